@@ -327,7 +327,9 @@ class BootStrap implements LogSupport {
                 valueType: 'json',
                 defaultValue: [
                     archiveAfterDays: 30,
-                    archiveFolder: 'archive'
+                    archiveFolder: 'archive',
+                    compressionLevel: -1,
+                    maxThreads: 4
                 ],
                 typedClass: LogArchiveConfig,
                 groupName: 'xh.io',
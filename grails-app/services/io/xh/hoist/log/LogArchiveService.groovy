@@ -9,17 +9,30 @@ package io.xh.hoist.log
 import groovy.io.FileType
 import io.xh.hoist.BaseService
 
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.zip.Deflater
 import java.util.zip.ZipEntry
-import java.util.zip.ZipInputStream
 import java.util.zip.ZipOutputStream
 
 import static io.xh.hoist.util.DateTimeUtils.DAYS
 import static java.io.File.separator
+import static java.lang.System.currentTimeMillis
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE
 
 /**
  * Support for automatic cleanup of server log files. Files older than the day limit configured
  * within the `xhLogArchiveConfig` AppConfig key will be moved into a configurable archive
  * directory and compressed into archives for each category.
+ *
+ * Archives for each category and month are written concurrently, streaming each file into its
+ * archive. Existing archives are never rewritten - if an archive already exists for a month, files
+ * are written to a new, numbered part alongside it (e.g. `2026-05.part2.zip`).
  */
 class LogArchiveService extends BaseService {
 
@@ -34,7 +47,11 @@ class LogArchiveService extends BaseService {
         )
     }
 
-    Map archiveLogs(Integer daysThreshold) {
+    /**
+     * Archive logs older than the given threshold. Synchronized so that a run triggered from the
+     * Admin Console cannot overlap with one from the daily timer and archive the same files twice.
+     */
+    synchronized Map archiveLogs(Integer daysThreshold) {
         if (!config.archiveFolder) {
             logWarn("Log archiving disabled due to incomplete / disabled xhLogArchiveConfig entry")
             return [archived: []]
@@ -47,22 +64,52 @@ class LogArchiveService extends BaseService {
 
         List<File> oldLogs = getOldLogFiles(logDir, daysThreshold)
         withInfo("Archiving ${oldLogs.size()} log(s) older than ${daysThreshold} days.") {
-            Map logsByCategory = mapLogsByCategory(oldLogs)
-
-            logsByCategory.each {String category, List<File> logFiles ->
-                File archiveDir = getArchiveDir(logDir.absolutePath, category)
-                if (!archiveDir.exists()) archiveDir.mkdirs()
-
-                Map logsByMonth = mapLogsByMonth(logFiles)
-                logsByMonth.each {String month, files ->
-                    ZipOutputStream zipStream = getZipStream(archiveDir.absolutePath, month)
-                    files.each {File file ->
-                        writeFileToZip(zipStream, file)
-                        file.delete()
-                        archivedFilenames << file.name
+            Long startTime = currentTimeMillis()
+            Map<String, Long> sizes = oldLogs.collectEntries { [it.name, it.length()] }
+            List<Throwable> failures = []
+            Integer level = compressionLevel
+
+            // Wait on every archive, so that a failure in one does not orphan the results of others.
+            ExecutorService pool = Executors.newFixedThreadPool(Math.max(config.maxThreads ?: 1, 1))
+            try {
+                List<Future<List<String>>> futures = []
+                mapLogsByCategory(oldLogs).each { String category, List<File> logFiles ->
+                    File archiveDir = getArchiveDir(logDir.absolutePath, category)
+                    if (!archiveDir.exists()) archiveDir.mkdirs()
+
+                    mapLogsByMonth(logFiles).each { String month, List<File> files ->
+                        futures << pool.submit({ archiveFiles(archiveDir, month, files, level) } as Callable<List<String>>)
+                    }
+                }
+                futures.each {
+                    try {
+                        archivedFilenames.addAll(it.get())
+                    } catch (ExecutionException e) {
+                        failures << e.cause
                     }
-                    zipStream.close()
                 }
+            } finally {
+                pool.shutdown()
+            }
+
+            Long elapsedMs = currentTimeMillis() - startTime,
+                 bytes = archivedFilenames.sum(0L) { sizes[it] } as Long
+            _lastRunStats = [
+                startTime  : startTime,
+                elapsedMs  : elapsedMs,
+                fileCount  : archivedFilenames.size(),
+                failedCount: failures.size(),
+                bytes      : bytes,
+                bytesPerSec: elapsedMs ? (bytes * 1000).intdiv(elapsedMs) : bytes
+            ]
+
+            if (failures) {
+                def e = new RuntimeException(
+                    "Failed to write ${failures.size()} log archive(s) - archived ${archivedFilenames.size()} log(s) successfully.",
+                    failures.first()
+                )
+                failures.tail().each { e.addSuppressed(it) }
+                throw e
             }
         }
 
@@ -73,6 +120,8 @@ class LogArchiveService extends BaseService {
     //------------------------
     // Implementation
     //------------------------
+    private Map _lastRunStats
+
     private File getArchiveDir(String logPath, String category) {
         return new File(logPath + separator + config.archiveFolder + separator + category)
     }
@@ -116,54 +165,53 @@ class LogArchiveService extends BaseService {
         }
     }
 
-    private ZipOutputStream getZipStream(String path, String month) {
-        def zipName = path + separator + month + '.zip',
-            zipFile = new File(zipName)
-
-        return zipFile.exists() ? reopenExistingStream(zipFile) : new ZipOutputStream(new FileOutputStream(zipName))
-    }
-
-    private ZipOutputStream reopenExistingStream(File zipFile) throws IOException {
-        File tempFile = File.createTempFile(zipFile.name, null)
-        tempFile.delete()
-
-        if (!zipFile.renameTo(tempFile)) {
-            throw new RuntimeException("Could not rename file " + zipFile.absolutePath + " to " + tempFile.absolutePath)
+    /**
+     * Write files into a new archive for a given month, deleting them once the archive is complete.
+     * Written to a temp file and then moved into place, so that an archive is never left partially
+     * written. The temp file is removed if the archive cannot be completed.
+     */
+    private List<String> archiveFiles(File archiveDir, String month, List<File> files, Integer level) {
+        Path zipPath = getNewArchivePath(archiveDir, month),
+             tempPath = Files.createTempFile(archiveDir.toPath(), month, '.zip.tmp')
+
+        try {
+            new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath))).withCloseable { ZipOutputStream zipStream ->
+                zipStream.level = level
+                files.each { File file -> writeFileToZip(zipStream, file) }
+            }
+            Files.move(tempPath, zipPath, ATOMIC_MOVE)
+        } finally {
+            Files.deleteIfExists(tempPath)
         }
 
-        ZipInputStream inStream = new ZipInputStream(new FileInputStream(tempFile))
-        ZipOutputStream outStream = new ZipOutputStream(new FileOutputStream(zipFile))
+        files.each { it.delete() }
+        return files*.name
+    }
 
-        ZipEntry entry = inStream.getNextEntry()
-        while (entry) {
-            writeZipToZip(inStream, outStream, entry)
-            entry = inStream.getNextEntry()
+    private Path getNewArchivePath(File archiveDir, String month) {
+        Path ret = archiveDir.toPath().resolve(month + '.zip')
+        for (int n = 2; Files.exists(ret); n++) {
+            ret = archiveDir.toPath().resolve(month + '.part' + n + '.zip')
         }
-        inStream.close()
-        tempFile.delete()
-
-        return outStream
+        return ret
     }
 
     private void writeFileToZip(ZipOutputStream zipStream, File file) {
-        def buffer = new byte[file.size()]
-
-        zipStream.putNextEntry(new ZipEntry(file.name))
-        file.withInputStream {stream ->
-            zipStream.write(buffer, 0, stream.read(buffer))
-        }
+        def entry = new ZipEntry(file.name)
+        entry.time = file.lastModified()
+        zipStream.putNextEntry(entry)
+        Files.copy(file.toPath(), zipStream)
         zipStream.closeEntry()
     }
 
-    private void writeZipToZip(ZipInputStream inStream, ZipOutputStream outStream, ZipEntry file) {
-        def buffer = new byte[1024],
-            len
-
-        outStream.putNextEntry(new ZipEntry(file.name))
-
-        while ((len = inStream.read(buffer)) > 0) {
-            outStream.write(buffer, 0, len)
+    private Integer getCompressionLevel() {
+        Integer ret = config.compressionLevel
+        if (ret == null) return Deflater.DEFAULT_COMPRESSION
+        if (ret < Deflater.DEFAULT_COMPRESSION || ret > Deflater.BEST_COMPRESSION) {
+            logWarn("Invalid compressionLevel $ret in xhLogArchiveConfig - must be -1 to 9. Using default.")
+            return Deflater.DEFAULT_COMPRESSION
         }
+        return ret
     }
 
     private LogArchiveConfig getConfig() {
@@ -171,6 +219,7 @@ class LogArchiveService extends BaseService {
     }
 
     Map getAdminStats() {[
-        config: configForAdminStats('xhLogArchiveConfig')
+        config : configForAdminStats('xhLogArchiveConfig'),
+        lastRun: _lastRunStats
     ]}
 }
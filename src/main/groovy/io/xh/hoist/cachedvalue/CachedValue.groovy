@@ -6,7 +6,7 @@
  */
 package io.xh.hoist.cachedvalue
 
-
+import com.hazelcast.map.IMap
 import com.hazelcast.topic.ITopic
 import com.hazelcast.topic.Message
 import com.hazelcast.topic.ReliableMessageListener
@@ -17,19 +17,25 @@ import io.xh.hoist.BaseService
 import io.xh.hoist.cluster.ClusterService
 import io.xh.hoist.log.LogSupport
 import io.xh.hoist.util.DateTimeUtils
+import io.xh.hoist.util.Timer
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
 
 import java.util.concurrent.TimeoutException
 
 import static grails.async.Promises.task
+import static io.xh.hoist.util.DateTimeUtils.SECONDS
 import static io.xh.hoist.util.DateTimeUtils.asEpochMilli
 import static io.xh.hoist.util.DateTimeUtils.intervalElapsed
+import static java.lang.Math.max
 import static java.lang.System.currentTimeMillis
 
 /**
  * Similar to {@link io.xh.hoist.cache.Cache}, but a single value that can be read, written, and expired.
  * Like Cache, this object supports replication across the cluster.
+ *
+ * Optionally supports refresh-ahead loading via `refreshFn`, so that readers continue to be served
+ * the current value while a replacement is loaded in the background, before the current one expires.
  */
 class CachedValue<V> implements LogSupport, AdminStats {
 
@@ -63,10 +69,53 @@ class CachedValue<V> implements LogSupport, AdminStats {
     /** Handler closures { CachedValueChanged<V> -> void } to be called on change. */
     public final List<Closure> onChange = []
 
+    /**
+     * Closure { void -> V } to load a fresh value in the background before the current value
+     * expires (optional). Requires `expireTime`. When replicated, runs on the primary instance only.
+     */
+    public final Closure refreshFn
+
+    /**
+     * Time in ms before expiry at which `refreshFn` should be called (default 10% of expireTime).
+     * Must be positive and less than expireTime. The current value will continue to be served
+     * until the refreshed value is set.
+     */
+    public final Long refreshAhead
+
+    /**
+     * Closure { V -> Object } to compute a content hash for a value (optional).
+     *
+     * If provided, setting a value with the same hash as the current value will not fire change
+     * events, and - if replicated - will publish only a lightweight version stamp to the cluster,
+     * rather than re-serializing the (unchanged) value to every instance. Instances unable to match
+     * a stamp (e.g. newly joined) pull the value from a backing IMap, into which each distinct value
+     * is written once, when it is first published as a stamp.
+     *
+     * Should return a true content digest - e.g. `{ JSONSerializer.serialize(it).sha256() }`.
+     * A collision between distinct values is treated as unchanged, suppressing both change events
+     * and replication of the new value until the next change with a distinct hash.
+     */
+    public final Closure hashFn
+
+    /**
+     * True to publish only a version stamp to the cluster on change, with replicas pulling the
+     * new value lazily from a backing IMap on their first subsequent read (default false).
+     *
+     * Useful for large values that are read infrequently, or on only some instances. Note that
+     * `oldValue` in {@link CachedValueChanged} events will be null on replicas that have not read
+     * the previous value.
+     */
+    public final boolean publishVersionOnly
+
 
     private final String loggerName
     private final ITopic<CachedValueEntry<V>> topic
+    private final IMap<String, CachedValueEntry<V>> valueMap
+    private final Timer refreshTimer
     private CachedValueEntry<V> entry = CachedValueEntry.createUninitializedCachedValueEntry(loggerName)
+    private String mirroredHash = null
+
+    private static final String VALUE_KEY = 'value'
 
     /** @internal - do not construct directly - use {@link BaseService#createCachedValue}. */
     @NamedVariant
@@ -77,8 +126,21 @@ class CachedValue<V> implements LogSupport, AdminStats {
         @NamedParam Closure expireFn = null,
         @NamedParam Closure timestampFn = null,
         @NamedParam Boolean replicate = false,
-        @NamedParam Closure onChange = null
+        @NamedParam Closure onChange = null,
+        @NamedParam Closure refreshFn = null,
+        @NamedParam Long refreshAhead = null,
+        @NamedParam Closure hashFn = null,
+        @NamedParam Boolean publishVersionOnly = false
     ) {
+        if (refreshFn && (expireTime == null || expireFn)) {
+            throw new RuntimeException("CachedValue '$name' requires an expireTime (and no expireFn) to support refreshFn.")
+        }
+        // Dynamic expireTime may depend on config not yet available - checked at runtime instead.
+        if (refreshFn && refreshAhead != null && !(expireTime instanceof Closure)) {
+            if (refreshAhead <= 0 || refreshAhead >= (expireTime as Long)) {
+                throw new RuntimeException("CachedValue '$name' requires a refreshAhead greater than 0 and less than expireTime.")
+            }
+        }
 
         this.name = name
         this.svc = svc
@@ -86,11 +148,31 @@ class CachedValue<V> implements LogSupport, AdminStats {
         this.expireFn = expireFn
         this.timestampFn = timestampFn
         this.replicate = replicate
+        this.refreshFn = refreshFn
+        this.refreshAhead = refreshAhead
+        this.hashFn = hashFn
+        this.publishVersionOnly = publishVersionOnly
 
         // Allow fine grain logging for this within namespace of owning service
         loggerName = "${svc.instanceLog.name}.CachedValue[$name]"
 
         topic = useCluster ? createUpdateTopic() : null
+
+        // Backing map holds the latest value for replicas that receive a stamp they cannot match.
+        valueMap = useCluster && (publishVersionOnly || hashFn) ?
+            ClusterService.hzInstance.getMap('xhcachedvalue.' + svc.hzName(name)) :
+            null
+
+        refreshTimer = refreshFn ? new Timer(
+            name: 'refreshAhead',
+            owner: this,
+            runFn: this.&refreshIfNeeded,
+            interval: {
+                Long ahead = refreshAheadMs
+                ahead != null ? max(ahead.intdiv(4), SECONDS) : SECONDS
+            },
+            primaryOnly: useCluster
+        ) : null
         if (onChange) {
             addChangeHandler(onChange)
         }
@@ -98,17 +180,19 @@ class CachedValue<V> implements LogSupport, AdminStats {
 
     /** @returns the cached value. */
     V get() {
-        if (shouldExpire(entry)) {
+        def current = resolvedEntry
+        if (shouldExpire(current)) {
             set(null)
             return null
         }
-        return entry.value
+        return current.value
     }
 
     /** @returns the cached value, or calls the provided closure to create, cache, and return. */
     V getOrCreate(Closure<V> c) {
-        V ret = entry.value
-        if (ret == null || shouldExpire(entry)) {
+        def current = resolvedEntry
+        V ret = current.value
+        if (ret == null || shouldExpire(current)) {
             ret = c()
             set(ret)
         }
@@ -117,7 +201,7 @@ class CachedValue<V> implements LogSupport, AdminStats {
 
     /** Set the value. */
     void set(V value) {
-        setInternal(new CachedValueEntry(value, loggerName), true)
+        setInternal(new CachedValueEntry(value, loggerName, computeHash(value)), true)
     }
 
     /** Clear the value. */
@@ -127,7 +211,7 @@ class CachedValue<V> implements LogSupport, AdminStats {
 
     /** @returns timestamp of the current entry, or null if none. */
     Long getTimestamp() {
-        getEntryTimestamp(entry)
+        getEntryTimestamp(resolvedEntry)
     }
 
     /**
@@ -164,15 +248,24 @@ class CachedValue<V> implements LogSupport, AdminStats {
     synchronized void setInternal(CachedValueEntry newEntry, boolean publish) {
         if (newEntry.uuid == entry.uuid) return
 
+        def oldEntry = entry,
+            unchanged = newEntry.contentHash != null && newEntry.contentHash == oldEntry.contentHash
+
+        // Version stamp for unchanged content can adopt the value we already hold. Otherwise it
+        // is held as-is, with its value pulled from the backing map on first read.
+        if (!newEntry.serializeValue && unchanged && oldEntry.serializeValue) {
+            newEntry = newEntry.withValue(oldEntry.value)
+        }
+
         // Make the swap and put on topic.
-        def oldEntry = entry
         entry = newEntry
-        if (publish && topic) topic.publish(newEntry)
+        if (publish && topic) publishEntry(newEntry, unchanged)
 
-        // Fire event handlers
-        if (onChange && oldEntry.value !== newEntry.value) {
+        // Fire event handlers - values of version stamps are pulled lazily, within the task.
+        if (onChange && !unchanged && (!newEntry.serializeValue || oldEntry.value !== newEntry.value)) {
             task {
-                def change = new CachedValueChanged(this, oldEntry.value, newEntry.value)
+                def value = newEntry.serializeValue ? newEntry.value : get(),
+                    change = new CachedValueChanged(this, oldEntry.value, value)
                 onChange.each { it.call(change) }
             }
         }
@@ -187,9 +280,7 @@ class CachedValue<V> implements LogSupport, AdminStats {
         if (expireFn) return expireFn(entry)
 
         if (expireTime) {
-            Long timestamp = getEntryTimestamp(entry),
-                 expire = (expireTime instanceof Closure ? expireTime.call() : expireTime) as Long
-            return intervalElapsed(expire, timestamp)
+            return intervalElapsed(expireMs, getEntryTimestamp(entry))
         }
         return false
     }
@@ -198,6 +289,73 @@ class CachedValue<V> implements LogSupport, AdminStats {
         return timestampFn ? asEpochMilli(timestampFn(entry.value)) : entry.dateEntered
     }
 
+    private String computeHash(V value) {
+        return value != null && hashFn ? hashFn(value)?.toString() : null
+    }
+
+    private void publishEntry(CachedValueEntry<V> newEntry, boolean unchanged) {
+        def asStamp = publishVersionOnly || unchanged
+
+        // Any stamp must be resolvable from the backing map, so write it there first - but only
+        // once per distinct content. Changed values published in full are not mirrored.
+        if (asStamp && (newEntry.contentHash == null || newEntry.contentHash != mirroredHash)) {
+            if (newEntry.value != null) {
+                valueMap.set(VALUE_KEY, newEntry)
+            } else {
+                valueMap.delete(VALUE_KEY)
+            }
+            mirroredHash = newEntry.contentHash
+        }
+        topic.publish(asStamp ? newEntry.asVersionStamp() : newEntry)
+    }
+
+    private CachedValueEntry<V> getResolvedEntry() {
+        def ret = entry
+        return ret.serializeValue ? ret : resolveEntry(ret)
+    }
+
+    private synchronized CachedValueEntry<V> resolveEntry(CachedValueEntry<V> stamp) {
+        // Another thread may have already resolved (or replaced) this stamp.
+        if (entry !== stamp) return resolvedEntry
+
+        CachedValueEntry<V> stored = valueMap.get(VALUE_KEY)
+        if (stored == null) {
+            entry = stamp.withValue(null)
+            entry.contentHash = null
+        } else if (stored.uuid == stamp.uuid || (stored.contentHash != null && stored.contentHash == stamp.contentHash)) {
+            entry = stamp.withValue(stored.value)
+        } else {
+            // Stored value is newer than our stamp - its own stamp will be ignored on arrival.
+            entry = stored
+        }
+        logTrace('Pulled value from cluster', entry.uuid)
+        return entry
+    }
+
+    private Long getExpireMs() {
+        return (expireTime instanceof Closure ? expireTime.call() : expireTime) as Long
+    }
+
+    private Long getRefreshAheadMs() {
+        // Guard against a dynamic expireTime falling to or below refreshAhead.
+        Long expire = expireMs
+        if (expire == null) return null
+        return refreshAhead != null && refreshAhead > 0 && refreshAhead < expire ? refreshAhead : expire.intdiv(10)
+    }
+
+    private void refreshIfNeeded() {
+        Long expire = expireMs
+        if (expire == null) return
+
+        def current = resolvedEntry
+        if (current.value == null) return
+        if (!intervalElapsed(expire - refreshAheadMs, getEntryTimestamp(current))) return
+
+        withDebug('Refreshing ahead of expiry') {
+            set(refreshFn() as V)
+        }
+    }
+
     private ITopic<CachedValueEntry<V>> createUpdateTopic() {
         // Create a durable topic with room for just a single item
         // and register for all events, including replay of event before this instance existed.
@@ -235,13 +393,18 @@ class CachedValue<V> implements LogSupport, AdminStats {
     }
 
     Map getAdminStats() {
-        def val = get(),
+        // Avoid pulling a value only published as a version stamp just to report on it.
+        def isStamp = !entry.serializeValue,
+            val = isStamp ? null : get(),
             ret = [
                 name     : name,
                 type     : 'CachedValue',
                 replicate: replicate,
-                timestamp: timestamp
+                timestamp: isStamp ? entry.dateEntered : getEntryTimestamp(entry)
             ]
+        if (refreshTimer) {
+            ret.lastRefreshTime = refreshTimer.lastRunCompleted
+        }
         if (val instanceof Collection || val instanceof Map) {
             ret.size = val.size()
         }
@@ -249,7 +412,9 @@ class CachedValue<V> implements LogSupport, AdminStats {
     }
 
     List<String> getComparableAdminStats() {
-        if (!replicate) return []
+        // Instances holding an unread version stamp cannot report size, or a timestamp derived via
+        // timestampFn, without pulling the value - so these stats are not comparable across the cluster.
+        if (!replicate || publishVersionOnly) return []
         def val = get(),
             ret = ['timestamp']
         if (val instanceof Collection || val instanceof Map) {
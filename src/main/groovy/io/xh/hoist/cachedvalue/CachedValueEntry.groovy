@@ -21,12 +21,20 @@ class CachedValueEntry<T> implements KryoSerializable, LogSupport {
     Long dateEntered
     String loggerName
     String uuid
+    String contentHash
     T value
 
-    CachedValueEntry(T value, String loggerName) {
+    /**
+     * False if this entry is a version stamp only, published without its value.
+     * Value for such an entry must be pulled from the backing map by its receiver.
+     */
+    boolean serializeValue = true
+
+    CachedValueEntry(T value, String loggerName, String contentHash = null) {
         this.dateEntered = currentTimeMillis()
         this.loggerName = loggerName
         this.value = value
+        this.contentHash = contentHash
         this.uuid = UUID.randomUUID()
     }
 
@@ -42,10 +50,34 @@ class CachedValueEntry<T> implements KryoSerializable, LogSupport {
         this.uuid = null
     }
 
+    /** @returns a copy of this entry with identical metadata, to be published without its value. */
+    CachedValueEntry<T> asVersionStamp() {
+        def ret = new CachedValueEntry<T>(loggerName)
+        ret.dateEntered = dateEntered
+        ret.uuid = uuid
+        ret.contentHash = contentHash
+        ret.serializeValue = false
+        return ret
+    }
+
+    /** @returns a copy of this entry with identical metadata, carrying the provided value. */
+    CachedValueEntry<T> withValue(T value) {
+        def ret = new CachedValueEntry<T>(loggerName)
+        ret.dateEntered = dateEntered
+        ret.uuid = uuid
+        ret.contentHash = contentHash
+        ret.value = value
+        return ret
+    }
+
     void write(Kryo kryo, Output output) {
         output.writeLong(dateEntered)
         output.writeString(loggerName)
         output.writeString(uuid)
+        output.writeString(contentHash)
+        output.writeBoolean(serializeValue)
+        if (!serializeValue) return
+
         withSingleTrace('Serializing value') {
             kryo.writeClassAndObject(output, value)
         }
@@ -55,6 +87,10 @@ class CachedValueEntry<T> implements KryoSerializable, LogSupport {
         dateEntered = input.readLong()
         loggerName = input.readString()
         uuid = input.readString()
+        contentHash = input.readString()
+        serializeValue = input.readBoolean()
+        if (!serializeValue) return
+
         withSingleTrace('Deserializing value') {
             value = (T) kryo.readClassAndObject(input)
         }
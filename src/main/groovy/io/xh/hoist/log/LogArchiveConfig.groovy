@@ -26,5 +26,17 @@ class LogArchiveConfig extends TypedConfigMap {
      */
     String archiveFolder = 'archive'
 
+    /**
+     * Deflate compression level (0-9) for archived files, or -1 for the JDK default. Lower values
+     * (e.g. 1) compress considerably faster at the cost of somewhat larger archives. Values outside
+     * this range are ignored in favor of the default.
+     */
+    Integer compressionLevel = -1
+
+    /**
+     * Max number of archives (one per category and month) to write concurrently.
+     */
+    Integer maxThreads = 4
+
     LogArchiveConfig(Map args) { init(args) }
 }